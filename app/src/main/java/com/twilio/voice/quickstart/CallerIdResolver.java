@@ -0,0 +1,290 @@
+package com.twilio.voice.quickstart;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.support.v4.content.ContextCompat;
+import android.support.v4.util.LruCache;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Resolves the caller of an incoming call to a contact display name.
+ *
+ * Numbers are normalized to E.164, the format Twilio uses for the caller, before they are
+ * looked up. Lookups run on a single background thread and results are kept in a bounded
+ * LRU cache. Names are cached for NAME_TTL_MS so renamed or deleted contacts are picked up,
+ * and numbers without a matching contact for NO_NAME_TTL_MS so contacts added later are. On creation, and again once READ_CONTACTS is granted, the
+ * cache is pre-warmed with the starred and most frequently or recently contacted numbers so
+ * that the common callers resolve without a contacts query. Without the READ_CONTACTS
+ * permission nothing is resolved or cached and the caller is shown as received.
+ */
+public class CallerIdResolver {
+
+    private static final String TAG = "CallerIdResolver";
+
+    private static final int CACHE_SIZE = 128;
+    private static final int PREWARM_SIZE = 32;
+
+    private static final String CLIENT_PREFIX = "client:";
+
+    /*
+     * How long a contact name is cached
+     */
+    private static final long NAME_TTL_MS = 60 * 60 * 1000;
+
+    /*
+     * How long a number without a matching contact is cached
+     */
+    private static final long NO_NAME_TTL_MS = 10 * 60 * 1000;
+
+    private static CallerIdResolver instance;
+
+    private final Context context;
+    private final String defaultCountryIso;
+    private final LruCache<String, CachedName> cache = new LruCache<>(CACHE_SIZE);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private long hitCount;
+    private long missCount;
+    private long totalLookupTimeMs;
+    private long maxLookupTimeMs;
+
+    public interface Listener {
+        void onResolved(String name);
+    }
+
+    /*
+     * A cached lookup result. The name is null for numbers without a matching contact.
+     */
+    private static class CachedName {
+        final String name;
+        final long expiresAt;
+
+        CachedName(String name, long expiresAt) {
+            this.name = name;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static synchronized CallerIdResolver getInstance(Context context) {
+        if (instance == null) {
+            instance = new CallerIdResolver(context.getApplicationContext());
+            instance.prewarm();
+        }
+        return instance;
+    }
+
+    private CallerIdResolver(Context context) {
+        this.context = context;
+        this.defaultCountryIso = defaultCountryIso(context);
+    }
+
+    /*
+     * Resolve the caller on the background thread. The listener is only called when a
+     * contact name is found.
+     */
+    public void resolve(String from, final Listener listener) {
+        final String key = cacheKey(from);
+        if (key == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String name = lookup(key);
+                if (name != null) {
+                    listener.onResolved(name);
+                }
+            }
+        });
+    }
+
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    public synchronized float getHitRate() {
+        long total = hitCount + missCount;
+        return total == 0 ? 0f : (float) hitCount / total;
+    }
+
+    /*
+     * Average time spent in contacts queries for cache misses
+     */
+    public synchronized long getAverageLookupTimeMs() {
+        return missCount == 0 ? 0 : totalLookupTimeMs / missCount;
+    }
+
+    public synchronized long getMaxLookupTimeMs() {
+        return maxLookupTimeMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits: %d, misses: %d, hit rate: %.2f, avg lookup: %dms, max lookup: %dms",
+                hitCount, missCount, getHitRate(), getAverageLookupTimeMs(), maxLookupTimeMs);
+    }
+
+    private String lookup(String key) {
+        if (!hasContactsPermission()) {
+            return null;
+        }
+        CachedName cachedName = cache.get(key);
+        if (cachedName != null && cachedName.expiresAt > SystemClock.elapsedRealtime()) {
+            synchronized (this) {
+                hitCount++;
+            }
+        } else {
+            long start = SystemClock.elapsedRealtime();
+            cachedName = queryContactName(key);
+            long lookupTimeMs = SystemClock.elapsedRealtime() - start;
+            if (cachedName == null) {
+                // The query failed, leave the number uncached so the next call retries it
+                return null;
+            }
+            cache.put(key, cachedName);
+            synchronized (this) {
+                missCount++;
+                totalLookupTimeMs += lookupTimeMs;
+                maxLookupTimeMs = Math.max(maxLookupTimeMs, lookupTimeMs);
+            }
+        }
+        Log.d(TAG, "Caller id stats " + this);
+        return cachedName.name;
+    }
+
+    /*
+     * Returns null if the contacts provider could not be queried
+     */
+    private CachedName queryContactName(String number) {
+        Uri uri = Uri.withAppendedPath(ContactsContract.PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+        Cursor cursor = null;
+        try {
+            cursor = context.getContentResolver().query(uri,
+                    new String[]{ContactsContract.PhoneLookup.DISPLAY_NAME}, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            if (cursor.moveToFirst()) {
+                return new CachedName(cursor.getString(0), SystemClock.elapsedRealtime() + NAME_TTL_MS);
+            }
+            return new CachedName(null, SystemClock.elapsedRealtime() + NO_NAME_TTL_MS);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to query contacts", e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /*
+     * Load the starred and the most frequently or recently contacted numbers into the cache
+     */
+    public void prewarm() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!hasContactsPermission()) {
+                    return;
+                }
+                ContentResolver contentResolver = context.getContentResolver();
+                Cursor cursor = null;
+                try {
+                    cursor = contentResolver.query(ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
+                            new String[]{
+                                    ContactsContract.CommonDataKinds.Phone.NORMALIZED_NUMBER,
+                                    ContactsContract.CommonDataKinds.Phone.NUMBER,
+                                    ContactsContract.CommonDataKinds.Phone.DISPLAY_NAME
+                            },
+                            ContactsContract.CommonDataKinds.Phone.STARRED + " = 1 OR " +
+                                    ContactsContract.CommonDataKinds.Phone.TIMES_CONTACTED + " > 0",
+                            null,
+                            ContactsContract.CommonDataKinds.Phone.STARRED + " DESC, " +
+                                    ContactsContract.CommonDataKinds.Phone.TIMES_CONTACTED + " DESC, " +
+                                    ContactsContract.CommonDataKinds.Phone.LAST_TIME_CONTACTED + " DESC");
+                    int count = 0;
+                    while (cursor != null && cursor.moveToNext() && count < PREWARM_SIZE) {
+                        // The normalized number is E.164 but is not set for every contact
+                        String key = cursor.getString(0);
+                        if (key == null) {
+                            key = cacheKey(cursor.getString(1));
+                        }
+                        String name = cursor.getString(2);
+                        if (key != null && name != null) {
+                            cache.put(key, new CachedName(name, SystemClock.elapsedRealtime() + NAME_TTL_MS));
+                            count++;
+                        }
+                    }
+                    Log.d(TAG, "Pre-warmed " + count + " callers");
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to pre-warm caller ids", e);
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean hasContactsPermission() {
+        return ContextCompat.checkSelfPermission(context, Manifest.permission.READ_CONTACTS) ==
+                PackageManager.PERMISSION_GRANTED;
+    }
+
+    /*
+     * Normalize the number to E.164 where the platform supports it. Twilio client identities
+     * are not phone numbers and are never looked up.
+     */
+    private String cacheKey(String from) {
+        if (from == null || from.startsWith(CLIENT_PREFIX)) {
+            return null;
+        }
+        String number = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            number = PhoneNumberUtils.formatNumberToE164(from, defaultCountryIso);
+        }
+        if (number == null) {
+            number = PhoneNumberUtils.stripSeparators(from);
+        }
+        return number == null || number.isEmpty() ? null : number;
+    }
+
+    /*
+     * The country used to expand national numbers, preferring the network over the SIM and
+     * falling back to the locale
+     */
+    private static String defaultCountryIso(Context context) {
+        TelephonyManager telephonyManager =
+                (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+        String countryIso = null;
+        if (telephonyManager != null) {
+            countryIso = telephonyManager.getNetworkCountryIso();
+            if (countryIso == null || countryIso.isEmpty()) {
+                countryIso = telephonyManager.getSimCountryIso();
+            }
+        }
+        if (countryIso == null || countryIso.isEmpty()) {
+            countryIso = Locale.getDefault().getCountry();
+        }
+        return countryIso.toUpperCase(Locale.US);
+    }
+}
@@ -0,0 +1,86 @@
+package com.twilio.voice.quickstart;
+
+import com.twilio.voice.IncomingCallMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * In-process registry of incoming call messages keyed by call sid.
+ *
+ * The GCM listener service registers each message once and hands only the call sid to the
+ * notification and to the VoiceActivity. Whichever path reaches the activity first takes the
+ * message, so a message is passed to the VoiceClient at most once no matter how many times
+ * it is delivered.
+ */
+public final class IncomingCallMessageRegistry {
+
+    /*
+     * Number of recently registered messages remembered to drop duplicate GCM deliveries
+     */
+    private static final int MAX_SEEN_MESSAGES = 32;
+
+    /*
+     * Number of messages kept for delivery. Messages nobody takes, such as invites missed while
+     * the VoiceActivity is in the background, are evicted oldest first.
+     */
+    private static final int MAX_PENDING_MESSAGES = 8;
+
+    private static final Map<String, IncomingCallMessage> pendingMessages =
+            new LinkedHashMap<String, IncomingCallMessage>(MAX_PENDING_MESSAGES, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, IncomingCallMessage> eldest) {
+                    return size() > MAX_PENDING_MESSAGES;
+                }
+            };
+
+    private static final Map<String, Boolean> seenMessages =
+            new LinkedHashMap<String, Boolean>(MAX_SEEN_MESSAGES, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_SEEN_MESSAGES;
+                }
+            };
+
+    private IncomingCallMessageRegistry() {
+    }
+
+    /*
+     * Register an incoming call message. Returns false if the same message (same call sid and
+     * cancelled state) was already registered, in which case it should not be delivered again.
+     * A cancel for an invite that has not been taken yet removes the invite, since nothing
+     * has been shown that would need cancelling. Otherwise the cancel is kept for delivery.
+     */
+    public static synchronized boolean register(IncomingCallMessage incomingCallMessage) {
+        String callSid = incomingCallMessage.getCallSid();
+        String messageKey = callSid + (incomingCallMessage.isCancelled() ? ":cancelled" : ":invite");
+        if (seenMessages.containsKey(messageKey)) {
+            return false;
+        }
+        seenMessages.put(messageKey, Boolean.TRUE);
+        if (incomingCallMessage.isCancelled() && pendingMessages.remove(callSid) != null) {
+            return true;
+        }
+        pendingMessages.put(callSid, incomingCallMessage);
+        return true;
+    }
+
+    /*
+     * Returns true if an invite for the call sid is waiting to be taken and has not been cancelled
+     */
+    public static synchronized boolean isPendingInvite(String callSid) {
+        IncomingCallMessage incomingCallMessage = pendingMessages.get(callSid);
+        return incomingCallMessage != null && !incomingCallMessage.isCancelled();
+    }
+
+    /*
+     * Take the pending message for the call sid. Returns null if there is none or if it has
+     * already been taken by another delivery path.
+     */
+    public static synchronized IncomingCallMessage take(String callSid) {
+        if (callSid == null) {
+            return null;
+        }
+        return pendingMessages.remove(callSid);
+    }
+}
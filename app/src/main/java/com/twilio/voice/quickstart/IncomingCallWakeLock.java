@@ -0,0 +1,202 @@
+package com.twilio.voice.quickstart;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.twilio.voice.quickstart.telemetry.CallTelemetry;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Keeps the CPU awake from the moment an incoming call push is received until the invite
+ * rings, is cancelled, or the wake lock times out.
+ *
+ * On Lollipop and later, while the screen is off, the incoming call notification launches
+ * the VoiceActivity through its full-screen intent. The wake lock then covers starting the
+ * activity and handing the invite to the VoiceClient until the incoming call dialog is shown.
+ * While the screen is on, or before Lollipop where there is no full-screen launch, the
+ * notification is the ring and the wake lock is released once it is posted.
+ *
+ * Wake lock hold times and push to ring latencies are logged and recorded as telemetry so
+ * the latency gain can be weighed against the battery cost. Push to ring is kept separately
+ * for the notification and the dialog, and tracked apart from the wake lock so that rings
+ * after the wake lock timed out are still recorded.
+ */
+public final class IncomingCallWakeLock {
+
+    private static final String TAG = "IncomingCallWakeLock";
+
+    /*
+     * Upper bound on how long a single incoming call may hold the wake lock
+     */
+    private static final long MAX_HOLD_TIME_MS = 10000;
+
+    /*
+     * Number of calls whose push time is remembered until they ring or are cancelled
+     */
+    private static final int MAX_TRACKED_PUSHES = 32;
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Map<String, HeldWakeLock> heldWakeLocks = new HashMap<>();
+    private static final Map<String, Long> pushReceivedTimes =
+            new LinkedHashMap<String, Long>(MAX_TRACKED_PUSHES, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MAX_TRACKED_PUSHES;
+                }
+            };
+
+    private static Context context;
+
+    private static long holdCount;
+    private static long totalHoldTimeMs;
+    private static long maxHoldTimeMs;
+    private static long timeoutCount;
+
+    private static final RingStats notificationRings = new RingStats("notification");
+    private static final RingStats dialogRings = new RingStats("dialog");
+
+    /*
+     * Push to ring latencies for one way of presenting the invite
+     */
+    private static class RingStats {
+        final String source;
+        long count;
+        long totalPushToRingMs;
+        long maxPushToRingMs;
+
+        RingStats(String source) {
+            this.source = source;
+        }
+
+        void add(long pushToRingMs) {
+            count++;
+            totalPushToRingMs += pushToRingMs;
+            maxPushToRingMs = Math.max(maxPushToRingMs, pushToRingMs);
+        }
+    }
+
+    private static class HeldWakeLock {
+        final PowerManager.WakeLock wakeLock;
+        final long acquiredAt;
+        final Runnable timeout;
+
+        HeldWakeLock(PowerManager.WakeLock wakeLock, long acquiredAt, Runnable timeout) {
+            this.wakeLock = wakeLock;
+            this.acquiredAt = acquiredAt;
+            this.timeout = timeout;
+        }
+    }
+
+    private IncomingCallWakeLock() {
+    }
+
+    /*
+     * Acquire the wake lock for an incoming call when its push is received
+     */
+    public static synchronized void acquire(Context context, final String callSid, long pushReceivedAt) {
+        IncomingCallWakeLock.context = context.getApplicationContext();
+        if (heldWakeLocks.containsKey(callSid)) {
+            return;
+        }
+        pushReceivedTimes.put(callSid, pushReceivedAt);
+
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        PowerManager.WakeLock wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                TAG + ":" + callSid);
+        wakeLock.setReferenceCounted(false);
+        wakeLock.acquire(MAX_HOLD_TIME_MS);
+
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                release(callSid, "timeout");
+            }
+        };
+        heldWakeLocks.put(callSid, new HeldWakeLock(wakeLock, SystemClock.elapsedRealtime(), timeout));
+        handler.postDelayed(timeout, MAX_HOLD_TIME_MS);
+    }
+
+    /*
+     * The incoming call notification was posted. Its push to ring is always recorded. It is
+     * the ring, and the wake lock is released, unless its full-screen intent is launching the
+     * VoiceActivity, which only happens on Lollipop and later while the screen is off.
+     */
+    @SuppressWarnings("deprecation")
+    public static synchronized void notificationPosted(Context context, String callSid) {
+        Long pushReceivedAt = pushReceivedTimes.get(callSid);
+        if (pushReceivedAt != null) {
+            recordRing(callSid, notificationRings, pushReceivedAt);
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        boolean interactive = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ?
+                powerManager.isInteractive() : powerManager.isScreenOn();
+        if (interactive || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            release(callSid, "notification");
+        }
+    }
+
+    /*
+     * The VoiceActivity is showing the incoming call dialog
+     */
+    public static synchronized void ringing(String callSid) {
+        Long pushReceivedAt = pushReceivedTimes.remove(callSid);
+        if (pushReceivedAt != null) {
+            recordRing(callSid, dialogRings, pushReceivedAt);
+        }
+        release(callSid, "dialog");
+    }
+
+    private static void recordRing(String callSid, RingStats ringStats, long pushReceivedAt) {
+        long pushToRingMs = SystemClock.elapsedRealtime() - pushReceivedAt;
+        ringStats.add(pushToRingMs);
+        CallTelemetry.getInstance(context).record(CallTelemetry.INCOMING_CALL_RINGING,
+                callSid, "source=" + ringStats.source + ", push_to_ring_ms=" + pushToRingMs);
+        Log.d(TAG, String.format("Ringing %s by %s after %dms. Rings: %d, avg push to ring: %dms, " +
+                        "max push to ring: %dms",
+                callSid, ringStats.source, pushToRingMs, ringStats.count,
+                ringStats.totalPushToRingMs / ringStats.count, ringStats.maxPushToRingMs));
+    }
+
+    /*
+     * The invite was cancelled before or while it was shown
+     */
+    public static synchronized void cancelled(String callSid) {
+        pushReceivedTimes.remove(callSid);
+        release(callSid, "cancelled");
+    }
+
+    private static synchronized void release(String callSid, String reason) {
+        HeldWakeLock heldWakeLock = heldWakeLocks.remove(callSid);
+        if (heldWakeLock == null) {
+            return;
+        }
+        handler.removeCallbacks(heldWakeLock.timeout);
+        if (heldWakeLock.wakeLock.isHeld()) {
+            heldWakeLock.wakeLock.release();
+        }
+
+        long holdTimeMs = Math.min(SystemClock.elapsedRealtime() - heldWakeLock.acquiredAt,
+                MAX_HOLD_TIME_MS);
+        holdCount++;
+        totalHoldTimeMs += holdTimeMs;
+        maxHoldTimeMs = Math.max(maxHoldTimeMs, holdTimeMs);
+        if ("timeout".equals(reason)) {
+            timeoutCount++;
+        }
+
+        CallTelemetry.getInstance(context).record(CallTelemetry.INCOMING_CALL_WAKE_LOCK,
+                callSid, reason + ", hold_time_ms=" + holdTimeMs);
+        Log.d(TAG, String.format("Released for %s after %dms (%s). Holds: %d, avg hold: %dms, " +
+                        "max hold: %dms, timeouts: %d",
+                callSid, holdTimeMs, reason, holdCount, totalHoldTimeMs / holdCount, maxHoldTimeMs,
+                timeoutCount));
+    }
+}
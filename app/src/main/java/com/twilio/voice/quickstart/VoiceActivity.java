@@ -22,6 +22,7 @@ import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
+import android.view.WindowManager;
 import android.widget.Chronometer;
 
 import com.google.android.gms.common.ConnectionResult;
@@ -38,6 +39,7 @@ import com.twilio.voice.RegistrationException;
 import com.twilio.voice.RegistrationListener;
 import com.twilio.voice.VoiceClient;
 import com.twilio.voice.quickstart.gcm.RegistrationIntentService;
+import com.twilio.voice.quickstart.telemetry.CallTelemetry;
 
 import java.util.HashMap;
 
@@ -48,6 +50,7 @@ public class VoiceActivity extends AppCompatActivity {
     private static final String ACCESS_TOKEN_SERVICE_URL = "PROVIDE_YOUR_ACCESS_TOKEN_SERVER";
 
     private static final int MIC_PERMISSION_REQUEST_CODE = 1;
+    private static final int CONTACTS_PERMISSION_REQUEST_CODE = 2;
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 9000;
 
     private boolean speakerPhone;
@@ -70,13 +73,14 @@ public class VoiceActivity extends AppCompatActivity {
     private IncomingCall activeIncomingCall;
 
     public static final String ACTION_SET_GCM_TOKEN = "SET_GCM_TOKEN";
-    public static final String INCOMING_CALL_MESSAGE = "INCOMING_CALL_MESSAGE";
+    public static final String INCOMING_CALL_SID = "INCOMING_CALL_SID";
     public static final String INCOMING_CALL_NOTIFICATION_ID = "INCOMING_CALL_NOTIFICATION_ID";
     public static final String ACTION_INCOMING_CALL = "INCOMING_CALL";
 
     public static final String KEY_GCM_TOKEN = "GCM_TOKEN";
 
     private NotificationManager notificationManager;
+    private CallTelemetry callTelemetry;
     private String gcmToken;
     private String accessToken;
     private AlertDialog alertDialog;
@@ -97,11 +101,17 @@ public class VoiceActivity extends AppCompatActivity {
         chronometer = (Chronometer) findViewById(R.id.chronometer);
 
         notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        callTelemetry = CallTelemetry.getInstance(this);
 
         setCallAction();
 
         voiceClientBroadcastReceiver = new VoiceClientBroadcastReceiver();
 
+        /*
+         * Pre-warm the caller id cache before any incoming call arrives
+         */
+        CallerIdResolver.getInstance(this);
+
         /*
          * Needed for setting/abandoning audio focus during call
          */
@@ -123,6 +133,9 @@ public class VoiceActivity extends AppCompatActivity {
         if (!checkPermissionForMicrophone()) {
             requestPermissionForMicrophone();
         } else {
+            if (!checkPermissionForContacts()) {
+                requestPermissionForContacts();
+            }
             startGCMRegistration();
         }
     }
@@ -145,14 +158,19 @@ public class VoiceActivity extends AppCompatActivity {
             @Override
             public void onIncomingCall(IncomingCall incomingCall) {
                 Log.d(TAG, "Incoming call");
+                callTelemetry.record(CallTelemetry.INCOMING_CALL, incomingCall.getCallSid());
                 activeIncomingCall = incomingCall;
+                setShowWhenLocked(true);
                 alertDialog = createIncomingCallDialog(VoiceActivity.this, answerCallClickListener(), cancelCallClickListener());
                 alertDialog.show();
+                IncomingCallWakeLock.ringing(incomingCall.getCallSid());
             }
 
             @Override
             public void onIncomingCallCancelled(IncomingCall incomingCall) {
                 Log.d(TAG, "Incoming call cancelled");
+                callTelemetry.record(CallTelemetry.INCOMING_CALL_CANCELLED, incomingCall.getCallSid());
+                IncomingCallWakeLock.cancelled(incomingCall.getCallSid());
                 if(activeIncomingCall != null &&
                         incomingCall.getCallSid() == activeIncomingCall.getCallSid() &&
                         incomingCall.getState() == CallState.PENDING) {
@@ -160,6 +178,7 @@ public class VoiceActivity extends AppCompatActivity {
                     if (alertDialog != null) {
                         alertDialog.dismiss();
                     }
+                    setShowWhenLocked(false);
                 }
             }
 
@@ -171,11 +190,14 @@ public class VoiceActivity extends AppCompatActivity {
             @Override
             public void onRegistered(String accessToken, String gcmToken) {
                 Log.d(TAG, "Successfully registered");
+                callTelemetry.record(CallTelemetry.REGISTERED, null);
             }
 
             @Override
             public void onError(RegistrationException error, String accessToken, String gcmToken) {
                 Log.e(TAG, String.format("Error: %d, %s", error.getErrorCode(), error.getMessage()));
+                callTelemetry.record(CallTelemetry.REGISTRATION_FAILED, null,
+                        String.format("%d, %s", error.getErrorCode(), error.getMessage()));
             }
         };
     }
@@ -185,18 +207,22 @@ public class VoiceActivity extends AppCompatActivity {
             @Override
             public void onConnected(OutgoingCall outgoingCall) {
                 Log.d(TAG, "Connected");
+                callTelemetry.record(CallTelemetry.CALL_CONNECTED, null, "outgoing");
             }
 
             @Override
             public void onDisconnected(OutgoingCall outgoingCall) {
                 resetUI();
                 Log.d(TAG, "Disconnect");
+                callTelemetry.record(CallTelemetry.CALL_DISCONNECTED, null, "outgoing");
             }
 
             @Override
             public void onDisconnected(OutgoingCall outgoingCall, CallException error) {
                 resetUI();
                 Log.e(TAG, String.format("Error: %d, %s", error.getErrorCode(), error.getMessage()));
+                callTelemetry.record(CallTelemetry.CALL_FAILED, null,
+                        String.format("outgoing, %d, %s", error.getErrorCode(), error.getMessage()));
             }
         };
     }
@@ -206,18 +232,22 @@ public class VoiceActivity extends AppCompatActivity {
             @Override
             public void onConnected(IncomingCall incomingCall) {
                 Log.d(TAG, "Connected");
+                callTelemetry.record(CallTelemetry.CALL_CONNECTED, incomingCall.getCallSid(), "incoming");
             }
 
             @Override
             public void onDisconnected(IncomingCall incomingCall) {
                 resetUI();
                 Log.d(TAG, "Disconnected");
+                callTelemetry.record(CallTelemetry.CALL_DISCONNECTED, incomingCall.getCallSid(), "incoming");
             }
 
             @Override
             public void onDisconnected(IncomingCall incomingCall, CallException error) {
                 resetUI();
                 Log.e(TAG, String.format("Error: %d, %s", error.getErrorCode(), error.getMessage()));
+                callTelemetry.record(CallTelemetry.CALL_FAILED, incomingCall.getCallSid(),
+                        String.format("incoming, %d, %s", error.getErrorCode(), error.getMessage()));
             }
         };
     }
@@ -256,6 +286,21 @@ public class VoiceActivity extends AppCompatActivity {
         hangupActionFab.hide();
         chronometer.setVisibility(View.INVISIBLE);
         chronometer.stop();
+        setShowWhenLocked(false);
+    }
+
+    /*
+     * Show the activity over the lock screen and turn the screen on while the incoming call
+     * dialog is up, such as when launched by the full-screen intent of the notification
+     */
+    private void setShowWhenLocked(boolean showWhenLocked) {
+        int flags = WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED |
+                WindowManager.LayoutParams.FLAG_TURN_SCREEN_ON;
+        if (showWhenLocked) {
+            getWindow().addFlags(flags);
+        } else {
+            getWindow().clearFlags(flags);
+        }
     }
 
     @Override
@@ -267,15 +312,29 @@ public class VoiceActivity extends AppCompatActivity {
     @Override
     protected void onPause() {
         super.onPause();
+        callTelemetry.flush();
         LocalBroadcastManager.getInstance(this).unregisterReceiver(voiceClientBroadcastReceiver);
         isReceiverRegistered = false;
     }
 
     private void handleIncomingCallIntent(Intent intent) {
         if (intent != null && intent.getAction() != null && intent.getAction() == VoiceActivity.ACTION_INCOMING_CALL) {
-            IncomingCallMessage incomingCallMessage = intent.getParcelableExtra(INCOMING_CALL_MESSAGE);
-            VoiceClient.handleIncomingCallMessage(getApplicationContext(), incomingCallMessage, incomingCallMessageListener);
+            handleIncomingCallMessage(intent.getStringExtra(INCOMING_CALL_SID));
+            notificationManager.cancel(intent.getIntExtra(VoiceActivity.INCOMING_CALL_NOTIFICATION_ID, 0));
+        }
+    }
+
+    /*
+     * Pass the registered IncomingCallMessage to the VoiceClient. The broadcast and the
+     * notification both deliver the same call sid so only the first one is handled.
+     */
+    private void handleIncomingCallMessage(String callSid) {
+        IncomingCallMessage incomingCallMessage = IncomingCallMessageRegistry.take(callSid);
+        if (incomingCallMessage == null) {
+            Log.d(TAG, "No pending incoming call message for " + callSid);
+            return;
         }
+        VoiceClient.handleIncomingCallMessage(getApplicationContext(), incomingCallMessage, incomingCallMessageListener);
     }
 
     private void registerReceiver() {
@@ -306,13 +365,14 @@ public class VoiceActivity extends AppCompatActivity {
                 retrieveAccessToken();
             } else if (action.equals(ACTION_INCOMING_CALL)) {
                 /*
-                 * Remove the notification from the Android notification drawer
+                 * Handle the incoming call message
                  */
-                notificationManager.cancel(intent.getIntExtra(VoiceActivity.INCOMING_CALL_NOTIFICATION_ID, 0));
+                handleIncomingCallMessage(intent.getStringExtra(INCOMING_CALL_SID));
                 /*
-                 * Handle the incoming call message
+                 * Remove the notification from the Android notification drawer. This happens
+                 * after the message is taken so a caller id update cannot post it again.
                  */
-                VoiceClient.handleIncomingCallMessage(getApplicationContext(), (IncomingCallMessage)intent.getParcelableExtra(INCOMING_CALL_MESSAGE), incomingCallMessageListener);
+                notificationManager.cancel(intent.getIntExtra(VoiceActivity.INCOMING_CALL_NOTIFICATION_ID, 0));
             }
         }
     }
@@ -325,6 +385,7 @@ public class VoiceActivity extends AppCompatActivity {
                 answer();
                 setCallUI();
                 alertDialog.dismiss();
+                setShowWhenLocked(false);
             }
         };
     }
@@ -334,8 +395,10 @@ public class VoiceActivity extends AppCompatActivity {
 
             @Override
             public void onClick(DialogInterface dialogInterface, int i) {
+                callTelemetry.record(CallTelemetry.INCOMING_CALL_REJECTED, activeIncomingCall.getCallSid());
                 activeIncomingCall.reject();
                 alertDialog.dismiss();
+                setShowWhenLocked(false);
             }
         };
     }
@@ -358,6 +421,7 @@ public class VoiceActivity extends AppCompatActivity {
         return new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                callTelemetry.record(CallTelemetry.OUTGOING_CALL_STARTED, null);
                 activeOutgoingCall = VoiceClient.call(getApplicationContext(), accessToken, twiMLParams, outgoingCallListener);
                 setCallUI();
             }
@@ -432,6 +496,7 @@ public class VoiceActivity extends AppCompatActivity {
      * Accept an incoming Call
      */
     private void answer() {
+        callTelemetry.record(CallTelemetry.INCOMING_CALL_ACCEPTED, activeIncomingCall.getCallSid());
         activeIncomingCall.accept(incomingCallListener);
     }
 
@@ -444,6 +509,11 @@ public class VoiceActivity extends AppCompatActivity {
         return false;
     }
 
+    private boolean checkPermissionForContacts() {
+        int resultContacts = ContextCompat.checkSelfPermission(this, Manifest.permission.READ_CONTACTS);
+        return resultContacts == PackageManager.PERMISSION_GRANTED;
+    }
+
     private void setAudioFocus(boolean setFocus) {
         if (audioManager != null) {
             if (setFocus) {
@@ -472,20 +542,42 @@ public class VoiceActivity extends AppCompatActivity {
                     "Microphone permissions needed. Please allow in your application settings.",
                     Snackbar.LENGTH_LONG).show();
         } else {
+            /*
+             * Ask for contacts access in the same prompt so incoming calls show the caller's name
+             */
+            String[] permissions = checkPermissionForContacts() ?
+                    new String[]{Manifest.permission.RECORD_AUDIO} :
+                    new String[]{Manifest.permission.RECORD_AUDIO, Manifest.permission.READ_CONTACTS};
+            ActivityCompat.requestPermissions(this, permissions, MIC_PERMISSION_REQUEST_CODE);
+        }
+    }
+
+    private void requestPermissionForContacts() {
+        if (!ActivityCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.READ_CONTACTS)) {
             ActivityCompat.requestPermissions(
                     this,
-                    new String[]{Manifest.permission.RECORD_AUDIO},
-                    MIC_PERMISSION_REQUEST_CODE);
+                    new String[]{Manifest.permission.READ_CONTACTS},
+                    CONTACTS_PERMISSION_REQUEST_CODE);
         }
     }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        /*
+         * Pre-warm the caller id cache now that contacts can be read
+         */
+        for (int i = 0; i < permissions.length && i < grantResults.length; i++) {
+            if (Manifest.permission.READ_CONTACTS.equals(permissions[i]) &&
+                    grantResults[i] == PackageManager.PERMISSION_GRANTED) {
+                CallerIdResolver.getInstance(this).prewarm();
+            }
+        }
+
         /*
          * Check if microphone permissions is granted
          */
         if (requestCode == MIC_PERMISSION_REQUEST_CODE && permissions.length > 0) {
-            boolean granted = true;
+            boolean granted = checkPermissionForMicrophone();
             if (granted) {
                 startGCMRegistration();
             } else {
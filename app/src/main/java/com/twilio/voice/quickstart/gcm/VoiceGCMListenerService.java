@@ -9,6 +9,7 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.service.notification.StatusBarNotification;
 import android.support.v4.content.LocalBroadcastManager;
 import android.support.v4.app.NotificationCompat;
@@ -16,8 +17,12 @@ import android.util.Log;
 
 import com.google.android.gms.gcm.GcmListenerService;
 import com.twilio.voice.IncomingCallMessage;
+import com.twilio.voice.quickstart.CallerIdResolver;
+import com.twilio.voice.quickstart.IncomingCallMessageRegistry;
+import com.twilio.voice.quickstart.IncomingCallWakeLock;
 import com.twilio.voice.quickstart.R;
 import com.twilio.voice.quickstart.VoiceActivity;
+import com.twilio.voice.quickstart.telemetry.CallTelemetry;
 
 public class VoiceGCMListenerService extends GcmListenerService {
 
@@ -30,20 +35,37 @@ public class VoiceGCMListenerService extends GcmListenerService {
     private static final String CALL_SID_KEY = "CALL_SID";
 
     private NotificationManager notificationManager;
+    private CallerIdResolver callerIdResolver;
 
     @Override
     public void onCreate() {
         super.onCreate();
         notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        callerIdResolver = CallerIdResolver.getInstance(this);
     }
 
     @Override
     public void onMessageReceived(String from, Bundle bundle) {
+        long pushReceivedAt = SystemClock.elapsedRealtime();
         Log.d(TAG, "onMessageReceived " + from);
 
         if (IncomingCallMessage.isValidMessage(bundle)) {
             int notificationId = (int)System.currentTimeMillis();
             IncomingCallMessage incomingCallMessage = new IncomingCallMessage(bundle);
+            CallTelemetry.getInstance(this).record(CallTelemetry.INCOMING_CALL_MESSAGE,
+                    incomingCallMessage.getCallSid(), incomingCallMessage.isCancelled() ? "cancelled" : null);
+            if (!IncomingCallMessageRegistry.register(incomingCallMessage)) {
+                Log.d(TAG, "Ignoring duplicate message for " + incomingCallMessage.getCallSid());
+                return;
+            }
+            /*
+             * Keep the CPU awake until the invite rings or it is cancelled
+             */
+            if (!incomingCallMessage.isCancelled()) {
+                IncomingCallWakeLock.acquire(this, incomingCallMessage.getCallSid(), pushReceivedAt);
+            } else {
+                IncomingCallWakeLock.cancelled(incomingCallMessage.getCallSid());
+            }
             showNotification(incomingCallMessage, notificationId);
             sendToActivity(incomingCallMessage, notificationId);
         }
@@ -54,37 +76,43 @@ public class VoiceGCMListenerService extends GcmListenerService {
      * Show the notification in the Android notification drawer
      */
     @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
-    private void showNotification(IncomingCallMessage incomingCallMessage, int notificationId) {
-        String callSid = incomingCallMessage.getCallSid();
+    private void showNotification(IncomingCallMessage incomingCallMessage, final int notificationId) {
+        final String callSid = incomingCallMessage.getCallSid();
 
         if(!incomingCallMessage.isCancelled()) {
             /*
-             * Display a notification for the incoming call
+             * Display a notification for the incoming call with the caller as received and
+             * update it in place once the caller resolves to a contact name
              */
-            Intent intent = new Intent(this, VoiceActivity.class);
+            final Intent intent = new Intent(this, VoiceActivity.class);
             intent.setAction(VoiceActivity.ACTION_INCOMING_CALL);
-            intent.putExtra(VoiceActivity.INCOMING_CALL_MESSAGE, incomingCallMessage);
+            intent.putExtra(VoiceActivity.INCOMING_CALL_SID, callSid);
             intent.putExtra(VoiceActivity.INCOMING_CALL_NOTIFICATION_ID, notificationId);
             intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
 
-            PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_ONE_SHOT);
-
-            // Pass the notification id and call sid to cancel notifications later
-            Bundle extras = new Bundle();
-            extras.putInt(NOTIFICATION_ID_KEY, notificationId);
-            extras.putString(CALL_SID_KEY, callSid);
-
-            NotificationCompat.Builder notificationBuilder =
-                    new NotificationCompat.Builder(this)
-                            .setSmallIcon(R.drawable.ic_call_white_24px)
-                            .setContentTitle("Voice Quickstart")
-                            .setContentText(incomingCallMessage.getFrom() + " is calling...")
-                            .setAutoCancel(true)
-                            .setExtras(extras)
-                            .setContentIntent(pendingIntent)
-                            .setColor(Color.rgb(214, 10, 37));
-
-            notificationManager.notify(notificationId, notificationBuilder.build());
+            notificationManager.notify(notificationId,
+                    buildNotification(intent, callSid, notificationId, incomingCallMessage.getFrom(), true));
+            IncomingCallWakeLock.notificationPosted(this, callSid);
+
+            callerIdResolver.resolve(incomingCallMessage.getFrom(), new CallerIdResolver.Listener() {
+                @Override
+                public void onResolved(String name) {
+                    Notification notification = buildNotification(intent, callSid, notificationId, name, false);
+                    // Skip the update if the invite was cancelled or already handled
+                    if (IncomingCallMessageRegistry.isPendingInvite(callSid)) {
+                        notificationManager.notify(notificationId, notification);
+                        /*
+                         * A cancel or take that landed after the check may have removed the
+                         * notification before this update was posted, so remove the update too.
+                         * Both remove the invite before the notification, so any later one
+                         * removes the update itself.
+                         */
+                        if (!IncomingCallMessageRegistry.isPendingInvite(callSid)) {
+                            notificationManager.cancel(notificationId);
+                        }
+                    }
+                }
+            });
         } else {
             if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
                 /*
@@ -117,11 +145,52 @@ public class VoiceGCMListenerService extends GcmListenerService {
     }
 
     /*
-     * Provide the IncomingCallMessage to the VoiceActivity
+     * Uses the application context since caller id updates are built after the service may
+     * have stopped. Only the first notification for a call carries the full-screen intent
+     * that launches the VoiceActivity while the screen is off, so updates do not launch it again.
+     * Before Lollipop there are no heads-up notifications and a full-screen intent would launch
+     * the VoiceActivity over whatever app is in front, so it is only set on Lollipop and later.
+     */
+    private Notification buildNotification(Intent intent, String callSid, int notificationId, String caller,
+                                           boolean fullScreen) {
+        Context context = getApplicationContext();
+        /*
+         * Extras are ignored when matching pending intents, so each call needs its own request
+         * code to keep another call's unsent intent, and its call sid, from being reused
+         */
+        PendingIntent pendingIntent = PendingIntent.getActivity(context, notificationId, intent,
+                PendingIntent.FLAG_ONE_SHOT);
+
+        // Pass the notification id and call sid to cancel notifications later
+        Bundle extras = new Bundle();
+        extras.putInt(NOTIFICATION_ID_KEY, notificationId);
+        extras.putString(CALL_SID_KEY, callSid);
+
+        NotificationCompat.Builder notificationBuilder =
+                new NotificationCompat.Builder(context)
+                        .setSmallIcon(R.drawable.ic_call_white_24px)
+                        .setContentTitle("Voice Quickstart")
+                        .setContentText(caller + " is calling...")
+                        .setAutoCancel(true)
+                        .setOnlyAlertOnce(true)
+                        .setPriority(NotificationCompat.PRIORITY_HIGH)
+                        .setCategory(NotificationCompat.CATEGORY_CALL)
+                        .setExtras(extras)
+                        .setContentIntent(pendingIntent)
+                        .setColor(Color.rgb(214, 10, 37));
+        if (fullScreen && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            notificationBuilder.setFullScreenIntent(pendingIntent, true);
+        }
+
+        return notificationBuilder.build();
+    }
+
+    /*
+     * Notify the VoiceActivity that the IncomingCallMessage is available in the registry
      */
     private void sendToActivity(IncomingCallMessage incomingCallMessage, int notificationId) {
         Intent intent = new Intent(VoiceActivity.ACTION_INCOMING_CALL);
-        intent.putExtra(VoiceActivity.INCOMING_CALL_MESSAGE, incomingCallMessage);
+        intent.putExtra(VoiceActivity.INCOMING_CALL_SID, incomingCallMessage.getCallSid());
         intent.putExtra(VoiceActivity.INCOMING_CALL_NOTIFICATION_ID, notificationId);
         LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
     }
@@ -0,0 +1,86 @@
+package com.twilio.voice.quickstart.telemetry;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/*
+ * Records call lifecycle and registration events for upload to a telemetry collector.
+ *
+ * Events are always written to logcat. They are only batched for upload when
+ * TELEMETRY_SERVICE_URL has been set to the collector endpoint.
+ */
+public class CallTelemetry {
+
+    private static final String TAG = "CallTelemetry";
+
+    private static final String TELEMETRY_SERVICE_URL = "PROVIDE_YOUR_TELEMETRY_SERVER";
+
+    private static final String SPOOL_DIRECTORY = "telemetry";
+
+    /*
+     * Event types
+     */
+    public static final String INCOMING_CALL_MESSAGE = "incoming_call_message";
+    public static final String INCOMING_CALL = "incoming_call";
+    public static final String INCOMING_CALL_RINGING = "incoming_call_ringing";
+    public static final String INCOMING_CALL_WAKE_LOCK = "incoming_call_wake_lock";
+    public static final String INCOMING_CALL_CANCELLED = "incoming_call_cancelled";
+    public static final String INCOMING_CALL_ACCEPTED = "incoming_call_accepted";
+    public static final String INCOMING_CALL_REJECTED = "incoming_call_rejected";
+    public static final String OUTGOING_CALL_STARTED = "outgoing_call_started";
+    public static final String CALL_CONNECTED = "call_connected";
+    public static final String CALL_DISCONNECTED = "call_disconnected";
+    public static final String CALL_FAILED = "call_failed";
+    public static final String REGISTERED = "registered";
+    public static final String REGISTRATION_FAILED = "registration_failed";
+
+    private static CallTelemetry instance;
+
+    private final TelemetryUploader telemetryUploader;
+
+    public static synchronized CallTelemetry getInstance(Context context) {
+        if (instance == null) {
+            instance = new CallTelemetry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CallTelemetry(Context context) {
+        TelemetryUploader telemetryUploader = null;
+        try {
+            URL endpoint = new URL(TELEMETRY_SERVICE_URL);
+            telemetryUploader = new TelemetryUploader.Builder(endpoint,
+                    new File(context.getCacheDir(), SPOOL_DIRECTORY)).build();
+        } catch (MalformedURLException e) {
+            Log.d(TAG, "No telemetry endpoint configured, events are only logged");
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Unable to create telemetry uploader", e);
+        }
+        this.telemetryUploader = telemetryUploader;
+    }
+
+    public void record(String type, String callSid) {
+        record(type, callSid, null);
+    }
+
+    public void record(String type, String callSid, String detail) {
+        Log.d(TAG, type + (callSid != null ? " " + callSid : "") + (detail != null ? " " + detail : ""));
+        if (telemetryUploader != null) {
+            telemetryUploader.record(type, callSid, detail);
+        }
+    }
+
+    /*
+     * Upload pending events without waiting for the batch to fill up or expire
+     */
+    public void flush() {
+        if (telemetryUploader != null) {
+            telemetryUploader.flush();
+            Log.d(TAG, "Telemetry stats " + telemetryUploader);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.twilio.voice.quickstart.telemetry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Batches telemetry events and uploads them gzipped to a collector endpoint.
+ *
+ * Events are collected in memory and closed into a batch once the batch reaches its maximum
+ * number of events or its maximum age. Each batch is written as a gzipped newline delimited
+ * JSON file into a spool directory and the spool is then drained oldest first with one POST
+ * per batch. After a retryable failure uploads back off exponentially, from initialBackoffMs
+ * up to maxBackoffMs, and resume from the oldest batch once the backoff expires. Meanwhile
+ * batches stay in the spool, which is bounded in bytes and sheds batches according to the
+ * configured DropPolicy once full.
+ *
+ * This class has no Android dependencies so that it can be exercised against a local
+ * collector in unit tests.
+ */
+public class TelemetryUploader {
+
+    public enum DropPolicy {
+        /*
+         * Delete the oldest spooled batches to make room for a new batch
+         */
+        DROP_OLDEST,
+        /*
+         * Discard the new batch and keep the spooled ones
+         */
+        DROP_NEWEST
+    }
+
+    private static final String SPOOL_FILE_SUFFIX = ".json.gz";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 10000;
+
+    private final URL endpoint;
+    private final File spoolDirectory;
+    private final int maxBatchEvents;
+    private final long maxBatchAgeMs;
+    private final long maxSpoolBytes;
+    private final int maxPendingBatches;
+    private final DropPolicy dropPolicy;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    private List<String> currentBatch = new ArrayList<>();
+    private long currentBatchStartMs;
+    private long spoolSequence;
+
+    /*
+     * Backoff state, only accessed from the executor thread
+     */
+    private long backoffMs;
+    private long nextUploadAttemptMs;
+
+    private final AtomicInteger pendingBatches = new AtomicInteger();
+    private final AtomicLong eventsRecorded = new AtomicLong();
+    private final AtomicLong eventsUploaded = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong batchesUploaded = new AtomicLong();
+    private final AtomicLong batchesDropped = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong uploadAttempts = new AtomicLong();
+    private final AtomicLong uploadFailures = new AtomicLong();
+    private final AtomicInteger minUploadedBatchSize = new AtomicInteger(Integer.MAX_VALUE);
+    private final AtomicInteger maxUploadedBatchSize = new AtomicInteger();
+
+    private TelemetryUploader(Builder builder) {
+        this.endpoint = builder.endpoint;
+        this.spoolDirectory = builder.spoolDirectory;
+        this.maxBatchEvents = builder.maxBatchEvents;
+        this.maxBatchAgeMs = builder.maxBatchAgeMs;
+        this.maxSpoolBytes = builder.maxSpoolBytes;
+        this.maxPendingBatches = builder.maxPendingBatches;
+        this.dropPolicy = builder.dropPolicy;
+        this.initialBackoffMs = builder.initialBackoffMs;
+        this.maxBackoffMs = builder.maxBackoffMs;
+
+        if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create spool directory " + spoolDirectory);
+        }
+        for (File file : spoolFiles()) {
+            spoolSequence = Math.max(spoolSequence, parseSequence(file) + 1);
+        }
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flushIfExpired();
+                drainSpool();
+            }
+        }, maxBatchAgeMs, maxBatchAgeMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Record an event. The call sid and detail are optional.
+     */
+    public void record(String type, String callSid, String detail) {
+        String event = toJson(System.currentTimeMillis(), type, callSid, detail);
+        List<String> closedBatch = null;
+        synchronized (this) {
+            if (currentBatch.isEmpty()) {
+                currentBatchStartMs = System.currentTimeMillis();
+            }
+            currentBatch.add(event);
+            if (currentBatch.size() >= maxBatchEvents) {
+                closedBatch = closeBatch();
+            }
+        }
+        eventsRecorded.incrementAndGet();
+        if (closedBatch != null) {
+            submit(closedBatch);
+        }
+    }
+
+    /*
+     * Close the current batch, regardless of its size and age, and attempt to upload it
+     */
+    public void flush() {
+        List<String> closedBatch;
+        synchronized (this) {
+            closedBatch = closeBatch();
+        }
+        if (closedBatch != null) {
+            submit(closedBatch);
+        } else {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drainSpool();
+                }
+            });
+        }
+    }
+
+    /*
+     * Spool the current batch and stop uploading. Spooled batches are uploaded by the next
+     * uploader using the same spool directory.
+     */
+    public void shutdown() {
+        final List<String> closedBatch;
+        synchronized (this) {
+            closedBatch = closeBatch();
+        }
+        if (closedBatch != null) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    spool(closedBatch);
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public long getEventsRecorded() {
+        return eventsRecorded.get();
+    }
+
+    public long getEventsUploaded() {
+        return eventsUploaded.get();
+    }
+
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+
+    public long getBatchesUploaded() {
+        return batchesUploaded.get();
+    }
+
+    public long getBatchesDropped() {
+        return batchesDropped.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getUploadAttempts() {
+        return uploadAttempts.get();
+    }
+
+    public long getUploadFailures() {
+        return uploadFailures.get();
+    }
+
+    /*
+     * Smallest number of events in an uploaded batch, or 0 if nothing was uploaded
+     */
+    public int getMinUploadedBatchSize() {
+        int minBatchSize = minUploadedBatchSize.get();
+        return minBatchSize == Integer.MAX_VALUE ? 0 : minBatchSize;
+    }
+
+    public int getMaxUploadedBatchSize() {
+        return maxUploadedBatchSize.get();
+    }
+
+    public long getSpoolBytes() {
+        long bytes = 0;
+        for (File file : spoolFiles()) {
+            bytes += file.length();
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("recorded: %d, uploaded: %d events in %d batches of %d-%d events (%d bytes), " +
+                        "dropped: %d events in %d batches, upload attempts: %d, failures: %d",
+                getEventsRecorded(), getEventsUploaded(), getBatchesUploaded(), getMinUploadedBatchSize(),
+                getMaxUploadedBatchSize(), getBytesUploaded(), getEventsDropped(), getBatchesDropped(),
+                getUploadAttempts(), getUploadFailures());
+    }
+
+    private List<String> closeBatch() {
+        if (currentBatch.isEmpty()) {
+            return null;
+        }
+        List<String> closedBatch = currentBatch;
+        currentBatch = new ArrayList<>();
+        return closedBatch;
+    }
+
+    private void flushIfExpired() {
+        List<String> closedBatch = null;
+        synchronized (this) {
+            if (!currentBatch.isEmpty() &&
+                    System.currentTimeMillis() - currentBatchStartMs >= maxBatchAgeMs) {
+                closedBatch = closeBatch();
+            }
+        }
+        if (closedBatch != null) {
+            spool(closedBatch);
+        }
+    }
+
+    /*
+     * Hand a closed batch to the upload thread. Batches beyond maxPendingBatches are dropped
+     * so that a stalled upload thread cannot grow memory without bound.
+     */
+    private void submit(final List<String> batch) {
+        if (pendingBatches.incrementAndGet() > maxPendingBatches) {
+            pendingBatches.decrementAndGet();
+            dropped(batch.size());
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                pendingBatches.decrementAndGet();
+                spool(batch);
+                drainSpool();
+            }
+        });
+    }
+
+    /*
+     * Write the batch into the spool, applying the drop policy if the spool is full
+     */
+    private void spool(List<String> batch) {
+        byte[] compressed;
+        try {
+            compressed = compress(batch);
+        } catch (IOException e) {
+            dropped(batch.size());
+            return;
+        }
+
+        List<File> files = spoolFiles();
+        long spoolBytes = 0;
+        for (File file : files) {
+            spoolBytes += file.length();
+        }
+        if (compressed.length > maxSpoolBytes) {
+            dropped(batch.size());
+            return;
+        }
+        while (spoolBytes + compressed.length > maxSpoolBytes) {
+            if (dropPolicy == DropPolicy.DROP_NEWEST || files.isEmpty()) {
+                dropped(batch.size());
+                return;
+            }
+            File oldest = files.remove(0);
+            spoolBytes -= oldest.length();
+            dropped(parseEventCount(oldest));
+            oldest.delete();
+        }
+
+        File file = new File(spoolDirectory,
+                String.format("%019d-%d%s", spoolSequence++, batch.size(), SPOOL_FILE_SUFFIX));
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            outputStream.write(compressed);
+        } catch (IOException e) {
+            file.delete();
+            dropped(batch.size());
+        } finally {
+            closeQuietly(outputStream);
+        }
+    }
+
+    /*
+     * Upload spooled batches oldest first, stopping at the first retryable failure. Nothing
+     * is uploaded while a backoff is pending.
+     */
+    private void drainSpool() {
+        if (System.currentTimeMillis() < nextUploadAttemptMs) {
+            return;
+        }
+        for (File file : spoolFiles()) {
+            int responseCode;
+            byte[] body;
+            try {
+                body = readFile(file);
+                uploadAttempts.incrementAndGet();
+                responseCode = post(body);
+            } catch (IOException e) {
+                uploadFailures.incrementAndGet();
+                backOff();
+                return;
+            }
+
+            int eventCount = parseEventCount(file);
+            if (responseCode >= 200 && responseCode < 300) {
+                eventsUploaded.addAndGet(eventCount);
+                batchesUploaded.incrementAndGet();
+                bytesUploaded.addAndGet(body.length);
+                updateMin(minUploadedBatchSize, eventCount);
+                updateMax(maxUploadedBatchSize, eventCount);
+                backoffMs = 0;
+                file.delete();
+            } else if (responseCode >= 400 && responseCode < 500 &&
+                    responseCode != 408 && responseCode != 429) {
+                // The collector rejected the batch, retrying it would not help
+                uploadFailures.incrementAndGet();
+                dropped(eventCount);
+                file.delete();
+            } else {
+                uploadFailures.incrementAndGet();
+                backOff();
+                return;
+            }
+        }
+    }
+
+    private void backOff() {
+        backoffMs = backoffMs == 0 ? initialBackoffMs : Math.min(backoffMs * 2, maxBackoffMs);
+        nextUploadAttemptMs = System.currentTimeMillis() + backoffMs;
+    }
+
+    private static void updateMin(AtomicInteger min, int value) {
+        int current;
+        while (value < (current = min.get()) && !min.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+
+    private int post(byte[] body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(body.length);
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            OutputStream outputStream = connection.getOutputStream();
+            try {
+                outputStream.write(body);
+            } finally {
+                outputStream.close();
+            }
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private void dropped(int eventCount) {
+        eventsDropped.addAndGet(eventCount);
+        batchesDropped.incrementAndGet();
+    }
+
+    private List<File> spoolFiles() {
+        File[] files = spoolDirectory.listFiles();
+        List<File> spoolFiles = new ArrayList<>();
+        if (files == null) {
+            return spoolFiles;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.getName().endsWith(SPOOL_FILE_SUFFIX)) {
+                spoolFiles.add(file);
+            }
+        }
+        return spoolFiles;
+    }
+
+    private static long parseSequence(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('-')));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static int parseEventCount(File file) {
+        String name = file.getName();
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1,
+                    name.length() - SPOOL_FILE_SUFFIX.length()));
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] compress(List<String> batch) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream);
+        try {
+            for (String event : batch) {
+                gzipOutputStream.write(event.getBytes("UTF-8"));
+                gzipOutputStream.write('\n');
+            }
+        } finally {
+            gzipOutputStream.close();
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        InputStream inputStream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                byteArrayOutputStream.write(buffer, 0, read);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static void closeQuietly(OutputStream outputStream) {
+        if (outputStream != null) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    static String toJson(long timestamp, String type, String callSid, String detail) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timestamp\":").append(timestamp);
+        appendField(json, "type", type);
+        appendField(json, "callSid", callSid);
+        appendField(json, "detail", detail);
+        return json.append('}').toString();
+    }
+
+    private static void appendField(StringBuilder json, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        json.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    public static class Builder {
+        private final URL endpoint;
+        private final File spoolDirectory;
+        private int maxBatchEvents = 50;
+        private long maxBatchAgeMs = TimeUnit.SECONDS.toMillis(30);
+        private long maxSpoolBytes = 256 * 1024;
+        private int maxPendingBatches = 8;
+        private DropPolicy dropPolicy = DropPolicy.DROP_OLDEST;
+        private long initialBackoffMs = TimeUnit.SECONDS.toMillis(30);
+        private long maxBackoffMs = TimeUnit.MINUTES.toMillis(30);
+
+        public Builder(URL endpoint, File spoolDirectory) {
+            this.endpoint = endpoint;
+            this.spoolDirectory = spoolDirectory;
+        }
+
+        public Builder maxBatchEvents(int maxBatchEvents) {
+            this.maxBatchEvents = maxBatchEvents;
+            return this;
+        }
+
+        public Builder maxBatchAgeMs(long maxBatchAgeMs) {
+            this.maxBatchAgeMs = maxBatchAgeMs;
+            return this;
+        }
+
+        public Builder maxSpoolBytes(long maxSpoolBytes) {
+            this.maxSpoolBytes = maxSpoolBytes;
+            return this;
+        }
+
+        public Builder maxPendingBatches(int maxPendingBatches) {
+            this.maxPendingBatches = maxPendingBatches;
+            return this;
+        }
+
+        public Builder dropPolicy(DropPolicy dropPolicy) {
+            this.dropPolicy = dropPolicy;
+            return this;
+        }
+
+        public Builder backoffMs(long initialBackoffMs, long maxBackoffMs) {
+            this.initialBackoffMs = initialBackoffMs;
+            this.maxBackoffMs = maxBackoffMs;
+            return this;
+        }
+
+        public TelemetryUploader build() {
+            if (endpoint == null || spoolDirectory == null) {
+                throw new IllegalArgumentException("An endpoint and a spool directory are required");
+            }
+            if (maxBatchEvents < 1 || maxBatchAgeMs < 1 || maxSpoolBytes < 1 || maxPendingBatches < 1) {
+                throw new IllegalArgumentException("Batch and spool limits must be positive");
+            }
+            if (initialBackoffMs < 1 || maxBackoffMs < initialBackoffMs) {
+                throw new IllegalArgumentException("Backoff must be positive and not exceed its maximum");
+            }
+            return new TelemetryUploader(this);
+        }
+    }
+}
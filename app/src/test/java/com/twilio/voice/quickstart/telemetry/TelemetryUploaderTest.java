@@ -0,0 +1,317 @@
+package com.twilio.voice.quickstart.telemetry;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Exercises the TelemetryUploader against a local stand-in collector.
+ */
+public class TelemetryUploaderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer collector;
+    private URL endpoint;
+    private final List<List<String>> receivedBatches = new ArrayList<>();
+    private volatile int responseCode = 200;
+    private volatile CountDownLatch requestReceived;
+    private volatile CountDownLatch releaseResponse;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        collector.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                List<String> events = new ArrayList<>();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(exchange.getRequestBody()), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    events.add(line);
+                }
+                if (releaseResponse != null) {
+                    // Stall the uploader until the test releases the response
+                    requestReceived.countDown();
+                    try {
+                        releaseResponse.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (responseCode == 200) {
+                    synchronized (receivedBatches) {
+                        receivedBatches.add(events);
+                    }
+                }
+                exchange.sendResponseHeaders(responseCode, 0);
+                exchange.getResponseBody().close();
+                exchange.close();
+            }
+        });
+        collector.start();
+        endpoint = new URL("http://127.0.0.1:" + collector.getAddress().getPort() + "/events");
+    }
+
+    @After
+    public void tearDown() {
+        collector.stop(0);
+    }
+
+    @Test
+    public void uploadsSizeBoundedBatches() throws Exception {
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .maxPendingBatches(100)
+                .build();
+
+        for (int i = 0; i < 100; i++) {
+            uploader.record("call_connected", "CA" + i, null);
+        }
+        shutdown(uploader);
+
+        assertEquals(100, uploader.getEventsRecorded());
+        assertEquals(100, uploader.getEventsUploaded());
+        assertEquals(10, uploader.getBatchesUploaded());
+        assertEquals(0, uploader.getEventsDropped());
+        assertEquals(10, receivedBatches.size());
+        assertEquals(10, uploader.getMinUploadedBatchSize());
+        assertEquals(10, uploader.getMaxUploadedBatchSize());
+        assertEquals("CA0", callSid(receivedBatches.get(0).get(0)));
+        assertEquals("CA99", callSid(receivedBatches.get(9).get(9)));
+    }
+
+    @Test
+    public void uploadsTimeBoundedBatches() throws Exception {
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(100)
+                .maxBatchAgeMs(50)
+                .build();
+
+        uploader.record("registered", null, null);
+        uploader.record("incoming_call", "CA1", "from \"alice\"\n");
+        waitForUploadedEvents(uploader, 2);
+        shutdown(uploader);
+
+        assertEquals(1, uploader.getBatchesUploaded());
+        assertEquals(2, uploader.getMaxUploadedBatchSize());
+        assertTrue(receivedBatches.get(0).get(1).contains("\"detail\":\"from \\\"alice\\\"\\n\""));
+    }
+
+    @Test
+    public void dropsOldestBatchesWhenSpoolIsFull() throws Exception {
+        responseCode = 503;
+        File spoolDirectory = temporaryFolder.newFolder();
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, spoolDirectory)
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .maxSpoolBytes(1024)
+                .maxPendingBatches(100)
+                .dropPolicy(TelemetryUploader.DropPolicy.DROP_OLDEST)
+                .build();
+
+        for (int i = 0; i < 500; i++) {
+            uploader.record("call_failed", "CA" + i, "31005, Connection error");
+        }
+        shutdown(uploader);
+
+        assertTrue(uploader.getSpoolBytes() <= 1024);
+        assertEquals(0, uploader.getEventsUploaded());
+        assertTrue(uploader.getUploadFailures() > 0);
+        assertEquals(0, uploader.getEventsDropped() % 10);
+
+        // The newest events are kept and delivered once the collector is back
+        responseCode = 200;
+        TelemetryUploader nextUploader = new TelemetryUploader.Builder(endpoint, spoolDirectory)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .build();
+        nextUploader.flush();
+        shutdown(nextUploader);
+
+        assertTrue(nextUploader.getEventsUploaded() > 0);
+        assertEquals(500 - nextUploader.getEventsUploaded(), uploader.getEventsDropped());
+        List<String> lastBatch = receivedBatches.get(receivedBatches.size() - 1);
+        assertEquals("CA499", callSid(lastBatch.get(lastBatch.size() - 1)));
+        String firstUploaded = callSid(receivedBatches.get(0).get(0));
+        assertEquals("CA" + uploader.getEventsDropped(), firstUploaded);
+        assertEquals(0, nextUploader.getSpoolBytes());
+    }
+
+    @Test
+    public void dropsNewestBatchesWhenSpoolIsFull() throws Exception {
+        responseCode = 503;
+        File spoolDirectory = temporaryFolder.newFolder();
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, spoolDirectory)
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .maxSpoolBytes(1024)
+                .maxPendingBatches(100)
+                .dropPolicy(TelemetryUploader.DropPolicy.DROP_NEWEST)
+                .build();
+
+        for (int i = 0; i < 500; i++) {
+            uploader.record("call_failed", "CA" + i, "31005, Connection error");
+        }
+        shutdown(uploader);
+        assertTrue(uploader.getEventsDropped() > 0);
+        assertEquals(0, uploader.getEventsDropped() % 10);
+
+        // The oldest events are kept and delivered once the collector is back
+        responseCode = 200;
+        TelemetryUploader nextUploader = new TelemetryUploader.Builder(endpoint, spoolDirectory)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .build();
+        nextUploader.flush();
+        shutdown(nextUploader);
+
+        assertEquals(500 - uploader.getEventsDropped(), nextUploader.getEventsUploaded());
+        assertEquals("CA0", callSid(receivedBatches.get(0).get(0)));
+        List<String> lastBatch = receivedBatches.get(receivedBatches.size() - 1);
+        assertEquals("CA" + (nextUploader.getEventsUploaded() - 1), callSid(lastBatch.get(lastBatch.size() - 1)));
+        assertEquals(0, nextUploader.getSpoolBytes());
+    }
+
+    @Test
+    public void dropsRejectedBatches() throws Exception {
+        responseCode = 400;
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(5)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .build();
+
+        for (int i = 0; i < 5; i++) {
+            uploader.record("call_connected", "CA" + i, null);
+        }
+        shutdown(uploader);
+
+        assertEquals(5, uploader.getEventsDropped());
+        assertEquals(0, uploader.getSpoolBytes());
+    }
+
+    @Test
+    public void dropsBatchesBeyondMaxPendingBatches() throws Exception {
+        requestReceived = new CountDownLatch(1);
+        releaseResponse = new CountDownLatch(1);
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .maxPendingBatches(2)
+                .build();
+
+        // Stall the upload thread on the first batch
+        for (int i = 0; i < 10; i++) {
+            uploader.record("call_connected", "CA" + i, null);
+        }
+        assertTrue(requestReceived.await(10, TimeUnit.SECONDS));
+
+        // Two batches queue up behind it and the remaining eight are dropped
+        for (int i = 10; i < 110; i++) {
+            uploader.record("call_connected", "CA" + i, null);
+        }
+        assertEquals(80, uploader.getEventsDropped());
+        assertEquals(8, uploader.getBatchesDropped());
+
+        releaseResponse.countDown();
+        shutdown(uploader);
+
+        assertEquals(30, uploader.getEventsUploaded());
+        assertEquals("CA29", callSid(receivedBatches.get(2).get(9)));
+    }
+
+    @Test
+    public void backsOffAfterRetryableFailure() throws Exception {
+        responseCode = 503;
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(TimeUnit.MINUTES.toMillis(1))
+                .maxPendingBatches(100)
+                .backoffMs(TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(10))
+                .build();
+
+        for (int i = 0; i < 500; i++) {
+            uploader.record("call_failed", "CA" + i, null);
+        }
+        uploader.flush();
+        shutdown(uploader);
+
+        // Only the first batch is attempted, the rest wait in the spool for the backoff
+        assertEquals(1, uploader.getUploadAttempts());
+        assertEquals(0, uploader.getEventsDropped());
+    }
+
+    @Test
+    public void resumesUploadsWhenBackoffExpires() throws Exception {
+        responseCode = 503;
+        TelemetryUploader uploader = new TelemetryUploader.Builder(endpoint, temporaryFolder.newFolder())
+                .maxBatchEvents(10)
+                .maxBatchAgeMs(20)
+                .backoffMs(50, 100)
+                .build();
+
+        for (int i = 0; i < 20; i++) {
+            uploader.record("call_connected", "CA" + i, null);
+        }
+        // A second attempt can only happen after the first backoff expired
+        waitForUploadAttempts(uploader, 2);
+        assertEquals(0, uploader.getEventsUploaded());
+
+        responseCode = 200;
+        waitForUploadedEvents(uploader, 20);
+        shutdown(uploader);
+
+        assertEquals(2, receivedBatches.size());
+        assertEquals("CA0", callSid(receivedBatches.get(0).get(0)));
+        assertEquals("CA19", callSid(receivedBatches.get(1).get(9)));
+    }
+
+    private static void shutdown(TelemetryUploader uploader) throws InterruptedException {
+        uploader.shutdown();
+        assertTrue(uploader.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    private static void waitForUploadAttempts(TelemetryUploader uploader, int attemptCount)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (uploader.getUploadAttempts() < attemptCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(uploader.getUploadAttempts() >= attemptCount);
+    }
+
+    private static void waitForUploadedEvents(TelemetryUploader uploader, int eventCount)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (uploader.getEventsUploaded() < eventCount && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(eventCount, uploader.getEventsUploaded());
+    }
+
+    private static String callSid(String event) {
+        int start = event.indexOf("\"callSid\":\"") + "\"callSid\":\"".length();
+        return event.substring(start, event.indexOf('"', start));
+    }
+}